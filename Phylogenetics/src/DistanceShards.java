@@ -0,0 +1,370 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Splits the distance matrix computation into independent shards, so that it
+ * can be spread over several worker processes.
+ *
+ * The matrix is divided into square blocks of <code>blocksize</code> rows and
+ * columns. Since the matrix is symmetric, only blocks on or above the diagonal
+ * are computed; each one is a shard. A worker writes each shard to its own
+ * binary block file, via a temporary file that is renamed once complete, so
+ * the shard directory doubles as a checkpoint: after a failure, only shards
+ * without a block file need to be recomputed. {@link #merge(PipelineMetrics)}
+ * then assembles the full matrix.
+ *
+ * Each block file records a fingerprint of the input (see
+ * {@link #fingerprint(List, SubstitutionModel)}), so blocks left over from a
+ * run on different data are recomputed rather than reused.
+ *
+ * Organisms must be in the same order in every process; use
+ * {@link #sortByName(ArrayList)}.
+ *
+ * Usage, running everything locally:
+ *
+ * <pre>
+ * java DistanceShards run &lt;dir&gt; &lt;blocksize&gt; &lt;workers&gt; &lt;fasta files...&gt;
+ * java DistanceShards worker &lt;dir&gt; &lt;blocksize&gt; &lt;shards&gt; &lt;fasta files...&gt;
+ * </pre>
+ *
+ * where <code>shards</code> is a comma-separated list of shard indices.
+ *
+ * @author raphaelkargon
+ */
+public class DistanceShards {
+	private static final int MAGIC = 0x50484453; //"PHDS"
+	private static final int HEADER_BYTES = 6 * 4 + 8;
+	private static final int MAX_ATTEMPTS = 3;
+
+	public final File dir;
+	public final int n;
+	public final int blocksize;
+	public final long fingerprint;
+	private final int blocks;
+
+	/**
+	 * @param dir
+	 *            The directory holding block files
+	 * @param n
+	 *            The number of organisms
+	 * @param blocksize
+	 *            The number of rows and columns in each block
+	 * @param fingerprint
+	 *            Identifies the input, see
+	 *            {@link #fingerprint(List, SubstitutionModel)}
+	 */
+	public DistanceShards(File dir, int n, int blocksize, long fingerprint) {
+		if (blocksize < 1) throw new IllegalArgumentException("Block size must be positive");
+		this.dir = dir;
+		this.n = n;
+		this.blocksize = blocksize;
+		this.fingerprint = fingerprint;
+		this.blocks = (n + blocksize - 1) / blocksize;
+	}
+
+	/* SHARDS */
+
+	public int shardCount() {
+		return blocks * (blocks + 1) / 2;
+	}
+
+	/**
+	 * Returns the row and column block of a shard, numbering shards row by row
+	 * along the upper triangle.
+	 *
+	 * @return {row block, column block}
+	 */
+	public int[] shardBlocks(int shard) {
+		if (shard < 0 || shard >= shardCount()) throw new IndexOutOfBoundsException("Shard " + shard);
+		int row = 0;
+		while (shard >= blocks - row) {
+			shard -= blocks - row;
+			row++;
+		}
+		return new int[] { row, row + shard };
+	}
+
+	public File shardFile(int shard) {
+		int[] b = shardBlocks(shard);
+		return new File(dir, "shard-" + b[0] + "-" + b[1] + ".bin");
+	}
+
+	/**
+	 * A shard is complete if its block file exists, has the expected size, and
+	 * its header matches this shard and input fingerprint. Partially written
+	 * files never have the final name, so the data itself is not checked.
+	 */
+	public boolean isComplete(int shard) {
+		int[] b = shardBlocks(shard);
+		File f = shardFile(shard);
+		if (!f.isFile() || f.length() != HEADER_BYTES + 8L * rows(b[0]) * rows(b[1])) return false;
+		try {
+			DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+			try {
+				return hasValidHeader(dis, shard);
+			}
+			finally {
+				dis.close();
+			}
+		}
+		catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * @return The indices of all shards that have not been completed
+	 */
+	public List<Integer> incompleteShards() {
+		List<Integer> shards = new ArrayList<Integer>();
+		for (int s = 0; s < shardCount(); s++)
+			if (!isComplete(s)) shards.add(s);
+		return shards;
+	}
+
+	/**
+	 * Computes the distances for one shard and writes them to its block file.
+	 * The organisms and model must be the ones {@link #fingerprint} was
+	 * computed from. If anything fails, the temporary file is removed.
+	 *
+	 * @param organisms
+	 *            All organisms, in the shared order
+	 * @param model
+	 *            The substitution model used to determine pairwise distances
+	 * @param shard
+	 *            The shard index
+	 * @param metrics
+	 *            Records a "distanceShard" phase, with progress in pairs
+	 * @throws IOException
+	 *             If the block file cannot be written
+	 */
+	public <T> void computeShard(ArrayList<Organism<T>> organisms,
+			SubstitutionModel<T> model, int shard, PipelineMetrics metrics)
+			throws IOException {
+		if (organisms.size() != n)
+			throw new IllegalArgumentException("Expected " + n + " organisms, got " + organisms.size());
+		int[] b = shardBlocks(shard);
+		int row_start = b[0] * blocksize, row_end = row_start + rows(b[0]);
+		int col_start = b[1] * blocksize, col_end = col_start + rows(b[1]);
+		PipelineMetrics.Phase phase = metrics.startPhase("distanceShard",
+				(long) rows(b[0]) * rows(b[1]));
+
+		File out = shardFile(shard);
+		File tmp = new File(dir, out.getName() + ".tmp");
+		boolean written = false;
+		try {
+			dir.mkdirs();
+			DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+			try {
+				dos.writeInt(MAGIC);
+				dos.writeInt(n);
+				dos.writeInt(row_start);
+				dos.writeInt(row_end);
+				dos.writeInt(col_start);
+				dos.writeInt(col_end);
+				dos.writeLong(fingerprint);
+				for (int i = row_start; i < row_end; i++) {
+					for (int j = col_start; j < col_end; j++)
+						dos.writeDouble(model.organismDistance(organisms.get(i), organisms.get(j)));
+					phase.advance(col_end - col_start);
+					metrics.increment("pairs", col_end - col_start);
+				}
+			}
+			finally {
+				dos.close();
+			}
+			Files.move(tmp.toPath(), out.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			written = true;
+		}
+		finally {
+			if (!written) tmp.delete();
+			phase.finish();
+		}
+	}
+
+	/**
+	 * Assembles the full distance matrix from all block files, mirroring the
+	 * upper triangle.
+	 *
+	 * @param metrics
+	 *            Records a "mergeShards" phase, with progress in shards
+	 * @return A 2-dimensional ArrayList of pairwise distances, as returned by
+	 *         {@link Phylogenetics#distanceMatrix(ArrayList, SubstitutionModel)}
+	 * @throws IOException
+	 *             If a block file is missing or invalid
+	 */
+	public ArrayList<ArrayList<Double>> merge(PipelineMetrics metrics) throws IOException {
+		PipelineMetrics.Phase phase = metrics.startPhase("mergeShards", shardCount());
+		try {
+			double[][] matrix = new double[n][n];
+			for (int s = 0; s < shardCount(); s++) {
+				int[] b = shardBlocks(s);
+				DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(shardFile(s))));
+				try {
+					if (!hasValidHeader(dis, s))
+						throw new IOException("Invalid or stale block file: " + shardFile(s));
+					int row_start = b[0] * blocksize, col_start = b[1] * blocksize;
+					for (int i = row_start; i < row_start + rows(b[0]); i++) {
+						for (int j = col_start; j < col_start + rows(b[1]); j++) {
+							matrix[i][j] = dis.readDouble();
+							matrix[j][i] = matrix[i][j];
+						}
+					}
+				}
+				finally {
+					dis.close();
+				}
+				phase.advance(1);
+			}
+
+			ArrayList<ArrayList<Double>> dist_matrix = new ArrayList<ArrayList<Double>>();
+			for (int i = 0; i < n; i++) {
+				ArrayList<Double> row = new ArrayList<Double>(n);
+				for (int j = 0; j < n; j++)
+					row.add(matrix[i][j]);
+				matrix[i] = null;
+				dist_matrix.add(row);
+			}
+			return dist_matrix;
+		}
+		finally {
+			phase.finish();
+		}
+	}
+
+	/**
+	 * Runs all incomplete shards in separate local JVMs, splitting them round
+	 * robin between workers. Shards whose block files are still missing after
+	 * the workers exit are retried, up to a fixed number of attempts.
+	 *
+	 * @param workers
+	 *            The number of worker processes to run at once
+	 * @param files
+	 *            The FASTA files to read in each worker
+	 * @throws IOException
+	 *             If some shards could not be completed
+	 * @throws InterruptedException
+	 *             If interrupted while waiting for workers
+	 */
+	public void runLocalWorkers(int workers, File[] files) throws IOException, InterruptedException {
+		String java = new File(new File(System.getProperty("java.home"), "bin"), "java").getPath();
+		String classpath = System.getProperty("java.class.path");
+
+		for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+			List<Integer> todo = incompleteShards();
+			if (todo.isEmpty()) return;
+			System.err.println("Attempt " + attempt + ": " + todo.size() + " of " + shardCount() + " shards to compute");
+
+			List<Process> processes = new ArrayList<Process>();
+			for (int w = 0; w < Math.min(workers, todo.size()); w++) {
+				String shards = "";
+				for (int k = w; k < todo.size(); k += workers)
+					shards += (shards.length() > 0 ? "," : "") + todo.get(k);
+
+				List<String> command = new ArrayList<String>(Arrays.asList(java, "-cp", classpath,
+						"DistanceShards", "worker", dir.getPath(), String.valueOf(blocksize), shards));
+				for (File f : files)
+					command.add(f.getPath());
+				processes.add(new ProcessBuilder(command).inheritIO().start());
+			}
+			for (Process p : processes) {
+				int status = p.waitFor();
+				if (status != 0) System.err.println("Worker exited with status " + status);
+			}
+		}
+
+		List<Integer> failed = incompleteShards();
+		if (!failed.isEmpty())
+			throw new IOException(failed.size() + " shards failed after " + MAX_ATTEMPTS + " attempts: " + failed);
+	}
+
+	/**
+	 * Reads a block file header, and checks that it belongs to the given
+	 * shard and was computed from the same input.
+	 */
+	private boolean hasValidHeader(DataInputStream dis, int shard) throws IOException {
+		int[] b = shardBlocks(shard);
+		int[] header = new int[6];
+		for (int k = 0; k < header.length; k++)
+			header[k] = dis.readInt();
+		int[] expected = { MAGIC, n, b[0] * blocksize, b[0] * blocksize + rows(b[0]),
+				b[1] * blocksize, b[1] * blocksize + rows(b[1]) };
+		return Arrays.equals(header, expected) && dis.readLong() == fingerprint;
+	}
+
+	private int rows(int block) {
+		return Math.min(blocksize, n - block * blocksize);
+	}
+
+	/**
+	 * Sorts organisms by name, so that every process agrees on their order
+	 */
+	public static <T> void sortByName(ArrayList<Organism<T>> organisms) {
+		Collections.sort(organisms, new Comparator<Organism<T>>() {
+			@Override
+			public int compare(Organism<T> o1, Organism<T> o2) {
+				return o1.name.compareTo(o2.name);
+			}
+		});
+	}
+
+	/**
+	 * Hashes the ordered organism names and traits, together with the model's
+	 * class, into a 64-bit fingerprint of a distance matrix's input.
+	 */
+	public static <T> long fingerprint(List<Organism<T>> organisms, SubstitutionModel<T> model) {
+		long h = model.getClass().getName().hashCode();
+		for (Organism<T> o : organisms) {
+			h = h * Organism.HASH_MULTIPLIER + o.name.hashCode();
+			h = h * Organism.HASH_MULTIPLIER + Organism.traitHash(o.traits);
+		}
+		return h;
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 5 || !(args[0].equals("run") || args[0].equals("worker"))) {
+			System.err.println("Usage: DistanceShards run <dir> <blocksize> <workers> <fasta files...>");
+			System.err.println("       DistanceShards worker <dir> <blocksize> <shard,shard,...> <fasta files...>");
+			System.exit(2);
+		}
+		File dir = new File(args[1]);
+		int blocksize = Integer.parseInt(args[2]);
+		File[] files = new File[args.length - 4];
+		for (int i = 0; i < files.length; i++)
+			files[i] = new File(args[i + 4]);
+
+		PipelineMetrics metrics = new PipelineMetrics();
+		ArrayList<Organism<Nucleotide>> organisms = Phylogenetics.readMultipleFASTAs(files, "", metrics);
+		sortByName(organisms);
+		SimpleNucleotideModel model = new SimpleNucleotideModel();
+		DistanceShards shards = new DistanceShards(dir, organisms.size(), blocksize,
+				fingerprint(organisms, model));
+
+		if (args[0].equals("worker")) {
+			for (String s : args[3].split(",")) {
+				int shard = Integer.parseInt(s);
+				if (!shards.isComplete(shard)) shards.computeShard(organisms, model, shard, metrics);
+			}
+		}
+		else {
+			shards.runLocalWorkers(Integer.parseInt(args[3]), files);
+			PhyloTree tree = Phylogenetics.UPGMA_Tree(organisms, shards.merge(metrics), metrics);
+			System.out.println(tree.toNewickString());
+			System.err.println(metrics.report());
+		}
+	}
+}
@@ -0,0 +1,116 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * Groups organisms with identical traits, so that distances and trees only
+ * need to be computed over one representative of each group.
+ *
+ * Traits are hashed with a 64-bit polynomial hash to find candidate groups,
+ * then compared exactly, so hash collisions never merge different sequences.
+ * After a tree is built over the representatives, {@link #expand(PhyloTree)}
+ * puts the duplicates back as zero-length polytomies.
+ *
+ * Only exact duplicates are grouped. Sequences that differ only by N or gaps
+ * may still be 0 apart under {@link SimpleNucleotideModel}, but are kept
+ * separate.
+ *
+ * @author raphaelkargon
+ */
+public class DuplicateGroups<T> {
+	private final ArrayList<Organism<T>> representatives = new ArrayList<Organism<T>>();
+	private final IdentityHashMap<Organism<?>, List<Organism<T>>> groups = new IdentityHashMap<Organism<?>, List<Organism<T>>>();
+
+	/**
+	 * @param organisms
+	 *            The organisms to group. The first organism of each group is
+	 *            its representative, so representatives keep the input order.
+	 */
+	public DuplicateGroups(List<Organism<T>> organisms) {
+		HashMap<Long, List<Organism<T>>> buckets = new HashMap<Long, List<Organism<T>>>();
+		for (Organism<T> o : organisms) {
+			Long h = Organism.traitHash(o.traits);
+			List<Organism<T>> bucket = buckets.get(h);
+			if (bucket == null) {
+				bucket = new ArrayList<Organism<T>>(1);
+				buckets.put(h, bucket);
+			}
+
+			Organism<T> match = null;
+			for (Organism<T> rep : bucket) {
+				if (Arrays.equals(rep.traits, o.traits)) {
+					match = rep;
+					break;
+				}
+			}
+			if (match == null) {
+				bucket.add(o);
+				representatives.add(o);
+				List<Organism<T>> group = new ArrayList<Organism<T>>(1);
+				group.add(o);
+				groups.put(o, group);
+			}
+			else groups.get(match).add(o);
+		}
+	}
+
+	/* ACCESSORS */
+
+	/**
+	 * @return One organism from each group, in input order
+	 */
+	public ArrayList<Organism<T>> getRepresentatives() {
+		return representatives;
+	}
+
+	/**
+	 * @return All organisms identical to <code>representative</code>,
+	 *         including itself
+	 */
+	public List<Organism<T>> getGroup(Organism<T> representative) {
+		return groups.get(representative);
+	}
+
+	/**
+	 * @return The number of organisms that were collapsed into another
+	 */
+	public int duplicateCount() {
+		int total = 0;
+		for (List<Organism<T>> group : groups.values())
+			total += group.size();
+		return total - representatives.size();
+	}
+
+	/**
+	 * Re-expands a tree built over the representatives. Each leaf whose
+	 * organism represents more than one organism becomes an internal node,
+	 * keeping its branch length, with a zero-length leaf child for every member
+	 * of the group. The tree is modified in place.
+	 *
+	 * @param tree
+	 *            A tree whose leaves are the representatives
+	 * @return The same tree
+	 */
+	public PhyloTree expand(PhyloTree tree) {
+		List<PhyloTree> stack = new ArrayList<PhyloTree>();
+		stack.add(tree);
+		while (!stack.isEmpty()) {
+			PhyloTree t = stack.remove(stack.size() - 1);
+			if (!t.isLeaf()) {
+				stack.addAll(t.children());
+				continue;
+			}
+			List<Organism<T>> group = groups.get(t.organism);
+			if (group == null || group.size() < 2) continue;
+
+			List<PhyloTree> children = new ArrayList<PhyloTree>(group.size());
+			for (Organism<T> o : group)
+				children.add(new PhyloTree(0, o, null));
+			t.organism = null;
+			t.setChildren(children);
+		}
+		return tree;
+	}
+}
@@ -0,0 +1,71 @@
+import java.util.concurrent.ConcurrentHashMap;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Emits a JDK Flight Recorder event spanning each phase of a run, so phases
+ * show up alongside GC and CPU data in a recording.
+ *
+ * Requires a JVM with JFR (JDK 8u262+ or 11+). Use
+ * {@link PipelineMetrics#enableFlightRecorder()} rather than creating this
+ * directly, so that older JVMs skip it.
+ *
+ * @author raphaelkargon
+ */
+public class JfrPipelineListener implements PipelineListener {
+	private final ConcurrentHashMap<PipelineMetrics.Phase, PhaseEvent> events = new ConcurrentHashMap<PipelineMetrics.Phase, PhaseEvent>();
+
+	@Name("phylogenetics.Phase")
+	@Label("Pipeline Phase")
+	@Category("Phylogenetics")
+	@Description("One stage of a tree building run")
+	static class PhaseEvent extends Event {
+		@Label("Phase")
+		String phase;
+
+		@Label("Work Completed")
+		long completed;
+
+		@Label("Total Work")
+		long total;
+
+		@Label("CPU Time")
+		@Timespan(Timespan.NANOSECONDS)
+		long cpuTime;
+
+		@Label("Allocated Bytes")
+		long allocated;
+	}
+
+	@Override
+	public void phaseStarted(PipelineMetrics.Phase phase) {
+		PhaseEvent e = new PhaseEvent();
+		if (!e.isEnabled()) return;
+		e.phase = phase.name;
+		e.total = phase.total;
+		e.begin();
+		events.put(phase, e);
+	}
+
+	@Override
+	public void phaseProgress(PipelineMetrics.Phase phase) {
+	}
+
+	@Override
+	public void phaseFinished(PipelineMetrics.Phase phase) {
+		PhaseEvent e = events.remove(phase);
+		if (e == null) return;
+		e.end();
+		if (e.shouldCommit()) {
+			e.completed = phase.completed();
+			e.cpuTime = phase.cpuNanos();
+			e.allocated = phase.allocatedBytes();
+			e.commit();
+		}
+	}
+}
@@ -0,0 +1,272 @@
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A time-reversible nucleotide substitution model, used to calculate the
+ * likelihood of a tree (see {@link TreeLikelihood}).
+ *
+ * The general (GTR) form is stored, with JC69 and HKY85 as special cases. The
+ * rate matrix is normalized so that branch lengths are measured in expected
+ * substitutions per site. Transition probability matrices are computed from an
+ * eigendecomposition of the rate matrix, and cached by branch length.
+ *
+ * States are ordered A, C, G, T. U is treated as T, and N and gaps are treated
+ * as missing data.
+ *
+ * @author raphaelkargon
+ */
+public class NucleotideLikelihoodModel {
+	public static final int STATES = 4;
+
+	//once the cache grows past this many branch lengths, it is cleared
+	private static final int MAX_CACHED_MATRICES = 1 << 14;
+
+	private final double[] freqs;
+	private final double[] eigenvalues;
+	private final double[] leftvectors; //flat 4x4, diag(pi^-1/2) * U
+	private final double[] rightvectors; //flat 4x4, U^T * diag(pi^1/2)
+	private final ConcurrentHashMap<Double, double[]> matrix_cache = new ConcurrentHashMap<Double, double[]>();
+
+	/**
+	 * Creates a general time-reversible model
+	 *
+	 * @param rates
+	 *            The six exchangeability rates, in the order AC, AG, AT, CG,
+	 *            CT, GT
+	 * @param freqs
+	 *            The equilibrium base frequencies of A, C, G, T
+	 */
+	public NucleotideLikelihoodModel(double[] rates, double[] freqs) {
+		if (rates.length != 6 || freqs.length != STATES)
+			throw new IllegalArgumentException("GTR needs 6 rates and 4 base frequencies");
+		double freqsum = 0;
+		for (double f : freqs) {
+			if (!(f > 0)) throw new IllegalArgumentException("Base frequencies must be positive: " + Arrays.toString(freqs));
+			freqsum += f;
+		}
+		this.freqs = new double[STATES];
+		for (int i = 0; i < STATES; i++)
+			this.freqs[i] = freqs[i] / freqsum;
+
+		//build rate matrix, q_ij = r_ij * pi_j
+		double[][] q = new double[STATES][STATES];
+		int r = 0;
+		for (int i = 0; i < STATES; i++) {
+			for (int j = i + 1; j < STATES; j++) {
+				if (rates[r] < 0) throw new IllegalArgumentException("Rates must be non-negative: " + Arrays.toString(rates));
+				q[i][j] = rates[r] * this.freqs[j];
+				q[j][i] = rates[r] * this.freqs[i];
+				r++;
+			}
+		}
+		double mu = 0;
+		for (int i = 0; i < STATES; i++) {
+			double rowsum = 0;
+			for (int j = 0; j < STATES; j++)
+				if (i != j) rowsum += q[i][j];
+			q[i][i] = -rowsum;
+			mu += this.freqs[i] * rowsum;
+		}
+		if (mu == 0) throw new IllegalArgumentException("At least one rate must be positive");
+
+		//normalize to one expected substitution per unit time, and symmetrize
+		//S = diag(pi^1/2) Q diag(pi^-1/2) has the same eigenvalues as Q
+		double[][] s = new double[STATES][STATES];
+		for (int i = 0; i < STATES; i++)
+			for (int j = 0; j < STATES; j++)
+				s[i][j] = q[i][j] / mu * Math.sqrt(this.freqs[i] / this.freqs[j]);
+
+		double[][] u = new double[STATES][STATES];
+		eigenvalues = jacobiEigen(s, u);
+
+		leftvectors = new double[STATES * STATES];
+		rightvectors = new double[STATES * STATES];
+		for (int i = 0; i < STATES; i++) {
+			for (int k = 0; k < STATES; k++) {
+				leftvectors[i * STATES + k] = u[i][k] / Math.sqrt(this.freqs[i]);
+				rightvectors[k * STATES + i] = u[i][k] * Math.sqrt(this.freqs[i]);
+			}
+		}
+	}
+
+	/* FACTORIES */
+
+	/**
+	 * Jukes-Cantor (1969): equal rates and equal base frequencies
+	 */
+	public static NucleotideLikelihoodModel JC69() {
+		return new NucleotideLikelihoodModel(new double[] { 1, 1, 1, 1, 1, 1 },
+				new double[] { 0.25, 0.25, 0.25, 0.25 });
+	}
+
+	/**
+	 * Hasegawa-Kishino-Yano (1985): transitions (A-G, C-T) occur
+	 * <code>kappa</code> times as often as transversions.
+	 */
+	public static NucleotideLikelihoodModel HKY85(double kappa, double[] freqs) {
+		return new NucleotideLikelihoodModel(new double[] { 1, kappa, 1, 1, kappa, 1 }, freqs);
+	}
+
+	public static NucleotideLikelihoodModel GTR(double[] rates, double[] freqs) {
+		return new NucleotideLikelihoodModel(rates, freqs);
+	}
+
+	/* ACCESSORS */
+
+	/**
+	 * @return A copy of the equilibrium base frequencies
+	 */
+	public double[] getFrequencies() {
+		return Arrays.copyOf(freqs, STATES);
+	}
+
+	/**
+	 * Returns the transition probability matrix for a branch of length t, as a
+	 * flat row-major 4x4 array, so that P(i -> j) = p[i*4 + j].
+	 * Matrices are cached, so the returned array must not be modified.
+	 *
+	 * @param t
+	 *            The branch length, negative values are treated as 0
+	 * @return The transition probability matrix
+	 */
+	public double[] transitionMatrix(double t) {
+		if (!(t > 0)) t = 0;
+		Double key = t;
+		double[] p = matrix_cache.get(key);
+		if (p == null) {
+			p = computeTransitionMatrix(t);
+			if (matrix_cache.size() >= MAX_CACHED_MATRICES) matrix_cache.clear();
+			matrix_cache.put(key, p);
+		}
+		return p;
+	}
+
+	/**
+	 * Returns the first and second derivatives of the transition probability
+	 * matrix with respect to branch length, in the same layout as
+	 * {@link #transitionMatrix(double)}. They follow from the
+	 * eigendecomposition, since d/dt exp(lambda*t) = lambda*exp(lambda*t).
+	 *
+	 * @param t
+	 *            The branch length, negative values are treated as 0
+	 * @return {dP/dt, d2P/dt2}
+	 */
+	public double[][] transitionDerivatives(double t) {
+		if (!(t > 0)) t = 0;
+		double[] first = new double[STATES], second = new double[STATES];
+		for (int k = 0; k < STATES; k++) {
+			double exp = Math.exp(eigenvalues[k] * t);
+			first[k] = eigenvalues[k] * exp;
+			second[k] = eigenvalues[k] * first[k];
+		}
+
+		double[] d1 = new double[STATES * STATES], d2 = new double[STATES * STATES];
+		for (int i = 0; i < STATES; i++) {
+			for (int j = 0; j < STATES; j++) {
+				double sum1 = 0, sum2 = 0;
+				for (int k = 0; k < STATES; k++) {
+					double lr = leftvectors[i * STATES + k] * rightvectors[k * STATES + j];
+					sum1 += lr * first[k];
+					sum2 += lr * second[k];
+				}
+				d1[i * STATES + j] = sum1;
+				d2[i * STATES + j] = sum2;
+			}
+		}
+		return new double[][] { d1, d2 };
+	}
+
+	private double[] computeTransitionMatrix(double t) {
+		double[] exp = new double[STATES];
+		for (int k = 0; k < STATES; k++)
+			exp[k] = Math.exp(eigenvalues[k] * t);
+
+		double[] p = new double[STATES * STATES];
+		for (int i = 0; i < STATES; i++) {
+			for (int j = 0; j < STATES; j++) {
+				double sum = 0;
+				for (int k = 0; k < STATES; k++)
+					sum += leftvectors[i * STATES + k] * exp[k] * rightvectors[k * STATES + j];
+				//clamp rounding error
+				p[i * STATES + j] = Math.max(sum, 0);
+			}
+		}
+		return p;
+	}
+
+	/**
+	 * Maps a nucleotide to its state index, or -1 if it is missing or
+	 * ambiguous data
+	 */
+	public static int stateIndex(Nucleotide n) {
+		switch (n) {
+		case A:
+			return 0;
+		case C:
+			return 1;
+		case G:
+			return 2;
+		case T:
+		case U:
+			return 3;
+		default:
+			return -1;
+		}
+	}
+
+	/**
+	 * Cyclic Jacobi eigenvalue algorithm for a small symmetric matrix.
+	 *
+	 * @param a
+	 *            The symmetric matrix, which is destroyed
+	 * @param v
+	 *            Filled with the eigenvectors, as columns
+	 * @return The eigenvalues
+	 */
+	private static double[] jacobiEigen(double[][] a, double[][] v) {
+		int n = a.length;
+		for (int i = 0; i < n; i++) {
+			Arrays.fill(v[i], 0);
+			v[i][i] = 1;
+		}
+
+		for (int sweep = 0; sweep < 100; sweep++) {
+			double off = 0;
+			for (int i = 0; i < n; i++)
+				for (int j = i + 1; j < n; j++)
+					off += a[i][j] * a[i][j];
+			if (off < 1e-30) break;
+
+			for (int p = 0; p < n; p++) {
+				for (int q = p + 1; q < n; q++) {
+					if (a[p][q] == 0) continue;
+					double theta = (a[q][q] - a[p][p]) / (2 * a[p][q]);
+					double t = Math.signum(theta) / (Math.abs(theta) + Math.sqrt(theta * theta + 1));
+					if (theta == 0) t = 1;
+					double c = 1 / Math.sqrt(t * t + 1), s = t * c;
+
+					for (int k = 0; k < n; k++) {
+						double akp = a[k][p], akq = a[k][q];
+						a[k][p] = c * akp - s * akq;
+						a[k][q] = s * akp + c * akq;
+					}
+					for (int k = 0; k < n; k++) {
+						double apk = a[p][k], aqk = a[q][k];
+						a[p][k] = c * apk - s * aqk;
+						a[q][k] = s * apk + c * aqk;
+					}
+					for (int k = 0; k < n; k++) {
+						double vkp = v[k][p], vkq = v[k][q];
+						v[k][p] = c * vkp - s * vkq;
+						v[k][q] = s * vkp + c * vkq;
+					}
+				}
+			}
+		}
+
+		double[] eigenvalues = new double[n];
+		for (int i = 0; i < n; i++)
+			eigenvalues[i] = a[i][i];
+		return eigenvalues;
+	}
+}
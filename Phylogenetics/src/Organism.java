@@ -7,6 +7,8 @@ import java.util.Arrays;
  *
  */
 public class Organism<T> {
+	static final long HASH_MULTIPLIER = 0x100000001b3L;
+
 	public T[] traits;
 	public String name;
 	
@@ -29,6 +31,23 @@ public class Organism<T> {
 		return new Organism<T>(traits, this.name);
 	}
 	
+	/**
+	 * Hashes a trait array with a 64-bit polynomial hash. Enum traits are
+	 * hashed by ordinal, so the hash is the same in every JVM.
+	 */
+	public static long traitHash(Object[] traits) {
+		if (traits == null) return 0;
+		long h = traits.length;
+		for (Object t : traits) {
+			long code;
+			if (t == null) code = 0;
+			else if (t instanceof Enum) code = ((Enum<?>) t).ordinal() + 1;
+			else code = t.hashCode();
+			h = h * HASH_MULTIPLIER + code;
+		}
+		return h;
+	}
+	
 	@Override
 	public String toString(){
 		return String.format("Organism: Name = \"%10s\", Traits = %s", name, Arrays.toString(traits));
@@ -80,54 +80,69 @@ public class Phylogenetics {
 	 * 
 	 * @param f
 	 *            The FASTA file to be read
+	 * @param metrics
+	 *            Records a "readFASTA" phase, with progress in bytes read
 	 * @return
 	 * @throws IOException
 	 */
-	public static ArrayList<Organism<Nucleotide>> readFASTA(File f, String regex)
-			throws IOException {
-		BufferedReader br = new BufferedReader(new FileReader(f));
-		ArrayList<Organism<Nucleotide>> organisms = new ArrayList<Organism<Nucleotide>>();
-		HashMap<String, String> seqs_hash = new HashMap<String, String>();
-		String line = "", seq = "", name = "";
-		boolean use_regex = (regex.length() > 0);
-		Pattern p = null;
-		Matcher m;
-		if (use_regex) {
-			p = Pattern.compile(regex);
-		}
+	public static ArrayList<Organism<Nucleotide>> readFASTA(File f,
+			String regex, PipelineMetrics metrics) throws IOException {
+		PipelineMetrics.Phase phase = metrics.startPhase("readFASTA", f.length());
+		try {
+			BufferedReader br = new BufferedReader(new FileReader(f));
+			ArrayList<Organism<Nucleotide>> organisms = new ArrayList<Organism<Nucleotide>>();
+			HashMap<String, String> seqs_hash = new HashMap<String, String>();
+			String line = "", seq = "", name = "";
+			boolean use_regex = (regex.length() > 0);
+			Pattern p = null;
+			Matcher m;
+			if (use_regex) {
+				p = Pattern.compile(regex);
+			}
 
-		while ((line = br.readLine()) != null) {
-			line.trim();
-			if (line.length() == 0) continue;
-			if (line.charAt(0) == '>') {
-				//if this isn't the first line in the file, ie a sequence has already been read
-				if (seq.length() > 0) {
-					//add to hash if organism hasn't been added yet
-					if (seqs_hash.get(name)==null) seqs_hash.put(name, seq);
-				}
+			while ((line = br.readLine()) != null) {
+				phase.advance(line.length() + 1);
+				line.trim();
+				if (line.length() == 0) continue;
+				if (line.charAt(0) == '>') {
+					//if this isn't the first line in the file, ie a sequence has already been read
+					if (seq.length() > 0) {
+						//add to hash if organism hasn't been added yet
+						if (seqs_hash.get(name)==null) seqs_hash.put(name, seq);
+					}
 
-				if (use_regex) {
-					m = p.matcher(line);
-					name = m.find() ? m.group(1) : line.substring(1);
+					if (use_regex) {
+						m = p.matcher(line);
+						name = m.find() ? m.group(1) : line.substring(1);
+					}
+					else name = line.substring(1); //sequence header
+					seq = ""; //new sequence 
+				}
+				else {
+					seq += line;
 				}
-				else name = line.substring(1); //sequence header
-				seq = ""; //new sequence 
 			}
-			else {
-				seq += line;
+			//add final sequence
+			if (!seqs_hash.containsKey(name)) seqs_hash.put(name, seq);
+
+			//convert hash to array of organisms
+			for (String name_tmp : seqs_hash.keySet()) {
+				organisms.add(new Organism<Nucleotide>(Nucleotide
+						.parseString(seqs_hash.get(name_tmp)), name_tmp));
 			}
-		}
-		//add final sequence
-		if (!seqs_hash.containsKey(name)) seqs_hash.put(name, seq);
 
-		//convert hash to array of organisms
-		for (String name_tmp : seqs_hash.keySet()) {
-			organisms.add(new Organism<Nucleotide>(Nucleotide
-					.parseString(seqs_hash.get(name_tmp)), name_tmp));
+			br.close();
+			metrics.increment("sequences", organisms.size());
+			return organisms;
+		}
+		finally {
+			phase.finish();
 		}
+	}
 
-		br.close();
-		return organisms;
+	public static ArrayList<Organism<Nucleotide>> readFASTA(File f, String regex)
+			throws IOException {
+		return readFASTA(f, regex, new PipelineMetrics());
 	}
 
 	public static ArrayList<Organism<Nucleotide>> readFASTA(File f)
@@ -146,16 +161,21 @@ public class Phylogenetics {
 	 *             If an unreadable file is encountered
 	 */
 	public static ArrayList<Organism<Nucleotide>> readMultipleFASTAs(
-			File[] files, String regex) throws IOException {
+			File[] files, String regex, PipelineMetrics metrics) throws IOException {
 		ArrayList<Organism<Nucleotide>> organisms = new ArrayList<Organism<Nucleotide>>();
 
 		for (File f : files) {
-			organisms.addAll(readFASTA(f, regex));
+			organisms.addAll(readFASTA(f, regex, metrics));
 		}
 
 		return organisms;
 	}
 
+	public static ArrayList<Organism<Nucleotide>> readMultipleFASTAs(
+			File[] files, String regex) throws IOException {
+		return readMultipleFASTAs(files, regex, new PipelineMetrics());
+	}
+
 	//calls readMultipleFASTAs with empty regex
 	public static ArrayList<Organism<Nucleotide>> readMultipleFASTAs(
 			File[] files) throws IOException {
@@ -174,22 +194,39 @@ public class Phylogenetics {
 	 *            The set of organisms to be used
 	 * @param model
 	 *            The substitution model used to determine pariwise distances
+	 * @param metrics
+	 *            Records a "distanceMatrix" phase, with progress in pairs
 	 * @return A 2-dimensional ArrayList of Double values representing pairwise
 	 *         distances
 	 */
 	public static <T> ArrayList<ArrayList<Double>> distanceMatrix(
-			ArrayList<Organism<T>> organisms, SubstitutionModel<T> model) {
-		ArrayList<ArrayList<Double>> dist_matrix = new ArrayList<ArrayList<Double>>();
+			ArrayList<Organism<T>> organisms, SubstitutionModel<T> model,
+			PipelineMetrics metrics) {
+		PipelineMetrics.Phase phase = metrics.startPhase("distanceMatrix",
+				(long) organisms.size() * organisms.size());
+		try {
+			ArrayList<ArrayList<Double>> dist_matrix = new ArrayList<ArrayList<Double>>();
 
-		for (Organism<T> o : organisms) {
-			ArrayList<Double> row = new ArrayList<Double>();
-			for (Organism<T> o2 : organisms) {
-				row.add(model.organismDistance(o, o2));
+			for (Organism<T> o : organisms) {
+				ArrayList<Double> row = new ArrayList<Double>();
+				for (Organism<T> o2 : organisms) {
+					row.add(model.organismDistance(o, o2));
+				}
+				dist_matrix.add(row);
+				phase.advance(row.size());
+				metrics.increment("pairs", row.size());
 			}
-			dist_matrix.add(row);
+
+			return dist_matrix;
 		}
+		finally {
+			phase.finish();
+		}
+	}
 
-		return dist_matrix;
+	public static <T> ArrayList<ArrayList<Double>> distanceMatrix(
+			ArrayList<Organism<T>> organisms, SubstitutionModel<T> model) {
+		return distanceMatrix(organisms, model, new PipelineMetrics());
 	}
 
 	/**
@@ -202,19 +239,73 @@ public class Phylogenetics {
 	 *            The array of organisms to be sorted into a tree
 	 * @param model
 	 *            The substitution model used
+	 * @param metrics
+	 *            Records the "distanceMatrix" phase and a "UPGMA" phase, with
+	 *            progress in matrix cells scanned
 	 * @return A phylogenetic tree with the given organisms
 	 */
 	public static <T> PhyloTree UPGMA_Tree(ArrayList<Organism<T>> organisms,
-			SubstitutionModel<T> model) {
-
-		//create distance matrix
-		ArrayList<ArrayList<Double>> dist_matrix = distanceMatrix(organisms, model);
+			SubstitutionModel<T> model, PipelineMetrics metrics) {
+		return UPGMA_Tree(organisms, distanceMatrix(organisms, model, metrics), metrics);
+	}
 
+	/**
+	 * Creates a UPGMA tree from a precomputed distance matrix, for example one
+	 * assembled by {@link DistanceShards#merge(PipelineMetrics)}.
+	 * 
+	 * @param organisms
+	 *            The array of organisms to be sorted into a tree
+	 * @param dist_matrix
+	 *            Pairwise distances, in the same order as
+	 *            <code>organisms</code>. The matrix is modified.
+	 * @param metrics
+	 *            Records a "UPGMA" phase
+	 * @return A phylogenetic tree with the given organisms
+	 */
+	public static <T> PhyloTree UPGMA_Tree(ArrayList<Organism<T>> organisms,
+			ArrayList<ArrayList<Double>> dist_matrix, PipelineMetrics metrics) {
 		//set up array of group counts, faster than recursively searching each subtree to find number of leaf nodes
 		ArrayList<Integer> groupcounts = new ArrayList<Integer>();
 		for (int i = 0; i < organisms.size(); i++) {
 			groupcounts.add(1);
 		}
+		return UPGMA_Tree(organisms, dist_matrix, groupcounts, metrics);
+	}
+
+	/**
+	 * Creates a UPGMA tree from a precomputed distance matrix, where each
+	 * organism may stand for a group of several identical organisms. Group
+	 * sizes weight the averaged distances, so the result is the same as
+	 * building the tree over every member (see
+	 * {@link #collapsedUPGMA_Tree(ArrayList, SubstitutionModel, PipelineMetrics)}).
+	 * 
+	 * @param organisms
+	 *            The array of organisms to be sorted into a tree
+	 * @param dist_matrix
+	 *            Pairwise distances, in the same order as
+	 *            <code>organisms</code>. The matrix is modified.
+	 * @param groupcounts
+	 *            The number of organisms each entry represents. The list is
+	 *            modified.
+	 * @param metrics
+	 *            Records a "UPGMA" phase
+	 * @return A phylogenetic tree with the given organisms
+	 */
+	public static <T> PhyloTree UPGMA_Tree(ArrayList<Organism<T>> organisms,
+			ArrayList<ArrayList<Double>> dist_matrix,
+			ArrayList<Integer> groupcounts, PipelineMetrics metrics) {
+		if (dist_matrix.size() != organisms.size())
+			throw new IllegalArgumentException("Distance matrix has "
+					+ dist_matrix.size() + " rows, expected " + organisms.size());
+		if (groupcounts.size() != organisms.size())
+			throw new IllegalArgumentException("Got " + groupcounts.size()
+					+ " group counts, expected " + organisms.size());
+
+		//each merge scans the remaining k*k matrix, so progress is weighted by that rather than by merge count
+		long work = 0;
+		for (long k = organisms.size(); k > 1; k--)
+			work += k * k;
+		PipelineMetrics.Phase phase = metrics.startPhase("UPGMA", work);
 
 		//Set up array of partial trees
 		ArrayList<PhyloTree> trees = new ArrayList<PhyloTree>();
@@ -280,11 +371,65 @@ public class Phylogenetics {
 				row.remove(j_min);
 				row.remove(i_min);
 			}
+
+			phase.advance((long) (trees.size() + 1) * (trees.size() + 1));
+			metrics.increment("merges", 1);
 		}	
 
+		phase.finish();
 		return trees.get(0);
 	}
 
+	public static <T> PhyloTree UPGMA_Tree(ArrayList<Organism<T>> organisms,
+			SubstitutionModel<T> model) {
+		return UPGMA_Tree(organisms, model, new PipelineMetrics());
+	}
+
+	/**
+	 * Creates a UPGMA tree, first collapsing organisms with identical traits
+	 * so that the distance matrix and tree are only built over unique
+	 * sequences. Each group of duplicates is then added back as a zero-length
+	 * polytomy (see {@link DuplicateGroups#expand(PhyloTree)}).
+	 * Each representative is weighted by the size of its group, so patristic
+	 * distances match the uncollapsed UPGMA tree, apart from ties between
+	 * equal distances, which UPGMA already breaks by input order.
+	 * 
+	 * @param organisms
+	 *            The array of organisms to be sorted into a tree
+	 * @param model
+	 *            The substitution model used
+	 * @param metrics
+	 *            Records a "collapseDuplicates" phase and a "duplicates"
+	 *            counter, as well as the phases of
+	 *            {@link #UPGMA_Tree(ArrayList, SubstitutionModel, PipelineMetrics)}
+	 * @return A phylogenetic tree with the given organisms
+	 */
+	public static <T> PhyloTree collapsedUPGMA_Tree(
+			ArrayList<Organism<T>> organisms, SubstitutionModel<T> model,
+			PipelineMetrics metrics) {
+		PipelineMetrics.Phase phase = metrics.startPhase("collapseDuplicates", organisms.size());
+		DuplicateGroups<T> groups = new DuplicateGroups<T>(organisms);
+		phase.advance(organisms.size());
+		metrics.increment("duplicates", groups.duplicateCount());
+		phase.finish();
+
+		//UPGMA averages over group sizes, so each representative must count as its whole group
+		ArrayList<Organism<T>> representatives = groups.getRepresentatives();
+		ArrayList<Integer> groupcounts = new ArrayList<Integer>();
+		for (Organism<T> rep : representatives) {
+			groupcounts.add(groups.getGroup(rep).size());
+		}
+
+		PhyloTree tree = UPGMA_Tree(representatives,
+				distanceMatrix(representatives, model, metrics), groupcounts, metrics);
+		return groups.expand(tree);
+	}
+
+	public static <T> PhyloTree collapsedUPGMA_Tree(
+			ArrayList<Organism<T>> organisms, SubstitutionModel<T> model) {
+		return collapsedUPGMA_Tree(organisms, model, new PipelineMetrics());
+	}
+
 	public static void main(String[] args) {
 //				/* File dialog */
 //						//TODO Set up actual interface
@@ -300,9 +445,28 @@ public class Phylogenetics {
 
 		File[] files = { new File("/Users/raphaelkargon/Dropbox/Programming/Phylogenetics/sample_vertebrates.fasta") };
 
+		PipelineMetrics metrics = new PipelineMetrics();
+		metrics.enableFlightRecorder();
+		metrics.addListener(new PipelineListener() {
+			@Override
+			public void phaseStarted(PipelineMetrics.Phase phase) {
+				System.err.println("Starting " + phase.name);
+			}
+
+			@Override
+			public void phaseProgress(PipelineMetrics.Phase phase) {
+				System.err.println(phase);
+			}
+
+			@Override
+			public void phaseFinished(PipelineMetrics.Phase phase) {
+				System.err.println(String.format("Finished %s in %.1f ms", phase.name, phase.wallNanos() / 1e6));
+			}
+		});
+
 		try {
 			ArrayList<Organism<Nucleotide>> organisms = new ArrayList<Organism<Nucleotide>>();
-			organisms = readMultipleFASTAs(files, "");
+			organisms = readMultipleFASTAs(files, "", metrics);
 			//organisms = Phylogenetics.readMultipleNucleotideClustalWs(files);
  
 			System.out.println(organisms.size() + " samples read.");
@@ -311,9 +475,11 @@ public class Phylogenetics {
 				System.out.println(o);
 			System.out.println();
 			
-			PhyloTree tree = UPGMA_Tree(organisms, new SimpleNucleotideModel());
+			PhyloTree tree = collapsedUPGMA_Tree(organisms, new SimpleNucleotideModel(), metrics);
 			System.out.println(tree);
 			System.out.println(tree.toNewickString());
+			System.out.println();
+			System.out.println(metrics.report());
 		}
 		catch (IOException e) {
 			e.printStackTrace();
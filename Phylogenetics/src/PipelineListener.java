@@ -0,0 +1,23 @@
+/**
+ * Receives progress notifications from a {@link PipelineMetrics} as the
+ * stages of a run (reading files, computing distances, building the tree)
+ * start, advance, and finish.
+ *
+ * Progress notifications are throttled to roughly one per percent of a phase.
+ * They may be sent from whichever thread is doing the work, so listeners
+ * should be thread-safe.
+ *
+ * @author raphaelkargon
+ */
+public interface PipelineListener {
+
+	public void phaseStarted(PipelineMetrics.Phase phase);
+
+	/**
+	 * Called as work is completed. See {@link PipelineMetrics.Phase#percent()}
+	 * and {@link PipelineMetrics.Phase#etaMillis()}.
+	 */
+	public void phaseProgress(PipelineMetrics.Phase phase);
+
+	public void phaseFinished(PipelineMetrics.Phase phase);
+}
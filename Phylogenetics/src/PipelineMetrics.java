@@ -0,0 +1,253 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects timings and counters for the stages of a run, and forwards
+ * progress to any registered {@link PipelineListener}s.
+ *
+ * Each stage is a {@link Phase}, which records wall time, CPU time and bytes
+ * allocated by the thread that started it, along with the amount of work
+ * done. Named counters (e.g. pairs compared, clusters merged) are kept across
+ * phases.
+ *
+ * @author raphaelkargon
+ */
+public class PipelineMetrics {
+	private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+	private final List<PipelineListener> listeners = new CopyOnWriteArrayList<PipelineListener>();
+	private final List<Phase> phases = new CopyOnWriteArrayList<Phase>();
+	private final Map<String, AtomicLong> counters = new LinkedHashMap<String, AtomicLong>();
+
+	/* LISTENERS */
+
+	public void addListener(PipelineListener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeListener(PipelineListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Registers a listener that emits JDK Flight Recorder events for each
+	 * phase, if the running JVM supports JFR.
+	 *
+	 * @return true if JFR events will be emitted
+	 */
+	public boolean enableFlightRecorder() {
+		try {
+			Class.forName("jdk.jfr.Event");
+			addListener((PipelineListener) Class.forName("JfrPipelineListener").getDeclaredConstructor().newInstance());
+			return true;
+		}
+		catch (Exception e) {
+			return false;
+		}
+		catch (LinkageError e) {
+			return false;
+		}
+	}
+
+	/* PHASES */
+
+	/**
+	 * Starts timing a new phase. CPU time and allocation are measured for the
+	 * calling thread, which should also call {@link Phase#finish()}.
+	 *
+	 * @param name
+	 *            The name of the phase
+	 * @param total
+	 *            The total amount of work in the phase, in whatever units it
+	 *            is advanced by, or 0 if unknown
+	 * @return The new phase
+	 */
+	public Phase startPhase(String name, long total) {
+		Phase p = new Phase(name, total);
+		phases.add(p);
+		for (PipelineListener l : listeners)
+			l.phaseStarted(p);
+		return p;
+	}
+
+	/**
+	 * @return All phases started so far, in order
+	 */
+	public List<Phase> getPhases() {
+		return new ArrayList<Phase>(phases);
+	}
+
+	/* COUNTERS */
+
+	public void increment(String counter, long n) {
+		AtomicLong c;
+		synchronized (counters) {
+			c = counters.get(counter);
+			if (c == null) {
+				c = new AtomicLong();
+				counters.put(counter, c);
+			}
+		}
+		c.addAndGet(n);
+	}
+
+	public long getCounter(String counter) {
+		synchronized (counters) {
+			AtomicLong c = counters.get(counter);
+			return (c == null) ? 0 : c.get();
+		}
+	}
+
+	/**
+	 * @return A summary table of all phases and counters
+	 */
+	public String report() {
+		String s = String.format("%-16s %12s %12s %14s %14s\n", "phase", "wall (ms)",
+				"cpu (ms)", "alloc (KB)", "rate (/s)");
+		for (Phase p : phases) {
+			s += String.format("%-16s %12.1f %12.1f %14d %14.1f\n", p.name,
+					p.wallNanos() / 1e6, p.cpuNanos() / 1e6,
+					p.allocatedBytes() / 1024, p.rate());
+		}
+		synchronized (counters) {
+			for (Map.Entry<String, AtomicLong> c : counters.entrySet())
+				s += String.format("%-16s %12d\n", c.getKey(), c.getValue().get());
+		}
+		return s;
+	}
+
+	private static long threadCpuTime() {
+		return THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : -1;
+	}
+
+	private static long threadAllocatedBytes() {
+		if (THREADS instanceof com.sun.management.ThreadMXBean) {
+			com.sun.management.ThreadMXBean t = (com.sun.management.ThreadMXBean) THREADS;
+			if (t.isThreadAllocatedMemorySupported() && t.isThreadAllocatedMemoryEnabled())
+				return t.getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1;
+	}
+
+	/**
+	 * One timed stage of a run.
+	 */
+	public class Phase {
+		public final String name;
+		public final long total;
+		private final AtomicLong completed = new AtomicLong();
+		private final long start_wall, start_cpu, start_alloc;
+		private volatile long end_wall = -1, end_cpu = -1, end_alloc = -1;
+		private volatile long next_report;
+
+		private Phase(String name, long total) {
+			this.name = name;
+			this.total = total;
+			this.next_report = reportStep();
+			start_cpu = threadCpuTime();
+			start_alloc = threadAllocatedBytes();
+			start_wall = System.nanoTime();
+		}
+
+		/**
+		 * Records that <code>n</code> units of work have been completed
+		 */
+		public void advance(long n) {
+			long done = completed.addAndGet(n);
+			if (done >= next_report) {
+				synchronized (this) {
+					if (done < next_report) return;
+					next_report = done + reportStep();
+				}
+				for (PipelineListener l : listeners)
+					l.phaseProgress(this);
+			}
+		}
+
+		/**
+		 * Stops timing the phase. Must be called from the thread that started
+		 * it.
+		 */
+		public void finish() {
+			if (isFinished()) return;
+			end_wall = System.nanoTime();
+			end_cpu = threadCpuTime();
+			end_alloc = threadAllocatedBytes();
+			for (PipelineListener l : listeners)
+				l.phaseFinished(this);
+		}
+
+		public boolean isFinished() {
+			return end_wall >= 0;
+		}
+
+		public long completed() {
+			return completed.get();
+		}
+
+		/**
+		 * @return Percentage of work completed, or NaN if the total is unknown
+		 */
+		public double percent() {
+			return (total > 0) ? Math.min(100.0, 100.0 * completed.get() / total) : Double.NaN;
+		}
+
+		/**
+		 * Estimates the time remaining, assuming work continues at the
+		 * average rate so far.
+		 *
+		 * @return Estimated milliseconds remaining, or -1 if unknown
+		 */
+		public long etaMillis() {
+			if (isFinished()) return 0;
+			long done = completed.get();
+			if (total <= 0 || done <= 0) return -1;
+			return (long) (wallNanos() / 1e6 * (total - done) / done);
+		}
+
+		public long wallNanos() {
+			return (isFinished() ? end_wall : System.nanoTime()) - start_wall;
+		}
+
+		/**
+		 * @return CPU time of the starting thread, or -1 if not supported
+		 */
+		public long cpuNanos() {
+			if (start_cpu < 0) return -1;
+			return (isFinished() ? end_cpu : threadCpuTime()) - start_cpu;
+		}
+
+		/**
+		 * @return Bytes allocated by the starting thread, or -1 if not
+		 *         supported
+		 */
+		public long allocatedBytes() {
+			if (start_alloc < 0 || !isFinished()) return -1;
+			return end_alloc - start_alloc;
+		}
+
+		/**
+		 * @return Units of work completed per second of wall time
+		 */
+		public double rate() {
+			long wall = wallNanos();
+			return (wall > 0) ? completed.get() * 1e9 / wall : 0;
+		}
+
+		private long reportStep() {
+			return Math.max(1, total / 100);
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s: %.1f%% (%d/%d), eta %d ms", name, percent(),
+					completed.get(), total, etaMillis());
+		}
+	}
+}
@@ -0,0 +1,339 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Compares the topologies of trees over the same set of leaves, matched by
+ * organism name.
+ *
+ * Trees are treated as rooted, as built by
+ * {@link Phylogenetics#UPGMA_Tree(java.util.ArrayList, SubstitutionModel)}:
+ * each internal node defines the cluster of leaves below it. Leaves and the
+ * root are trivial clusters and are ignored, as are nodes with a single child,
+ * which repeat their child's cluster. The Robinson-Foulds distance is the
+ * number of clusters found in one tree but not the other.
+ *
+ * Traversals are iterative, so very deep trees are fine.
+ *
+ * @author raphaelkargon
+ */
+public class TreeComparison {
+	public static final long DEFAULT_SEED = 0x5eed5eedL;
+
+	/**
+	 * Robinson-Foulds distance between two trees, using Day's linear-time
+	 * algorithm. Leaves of <code>t1</code> are numbered left to right, so that
+	 * each of its clusters is an interval, which is stored in a table indexed
+	 * by one of its ends. A cluster of <code>t2</code> is shared if its leaves
+	 * form an interval that is in the table.
+	 *
+	 * @return The number of clusters in exactly one of the two trees
+	 */
+	public static int robinsonFoulds(PhyloTree t1, PhyloTree t2) {
+		FlatTree a = new FlatTree(t1), b = new FlatTree(t2);
+		int n = a.leafcount;
+		if (b.leafcount != n) throw new IllegalArgumentException("Trees have different numbers of leaves");
+
+		//number leaves of t1 left to right, preorder visits them in that order
+		HashMap<String, Integer> labels = new HashMap<String, Integer>();
+		for (int v = 0; v < a.size(); v++) {
+			if (a.nodes[v].isLeaf() && labels.put(leafName(a.nodes[v]), labels.size()) != null)
+				throw new IllegalArgumentException("Duplicate leaf name: " + leafName(a.nodes[v]));
+		}
+
+		//Day's rule: a cluster is stored at its right end, unless it is the last child of its parent, in which case it is stored at its left end.
+		//Single-child nodes are skipped and pass their position on to their child, so each end holds at most one cluster.
+		int[] by_right = new int[n], by_left = new int[n];
+		Arrays.fill(by_right, -1);
+		Arrays.fill(by_left, -1);
+		boolean[] store_right = new boolean[a.size()];
+		store_right[0] = true;
+		for (int v = 1; v < a.size(); v++) {
+			int p = a.parent[v];
+			int siblings = a.nodes[p].children().size();
+			store_right[v] = (siblings == 1) ? store_right[p] : a.childpos[v] < siblings - 1;
+		}
+		int[] lo = new int[a.size()], hi = new int[a.size()];
+		int clusters_a = 0;
+		for (int v = a.size() - 1; v >= 0; v--) {
+			if (a.nodes[v].isLeaf()) {
+				lo[v] = hi[v] = labels.get(leafName(a.nodes[v]));
+				continue;
+			}
+			lo[v] = Integer.MAX_VALUE;
+			hi[v] = -1;
+			for (int c : a.children[v]) {
+				lo[v] = Math.min(lo[v], lo[c]);
+				hi[v] = Math.max(hi[v], hi[c]);
+			}
+			if (a.children[v].length == 1 || hi[v] - lo[v] + 1 == n) continue;
+			clusters_a++;
+			if (store_right[v]) by_right[hi[v]] = lo[v];
+			else by_left[lo[v]] = hi[v];
+		}
+
+		int[] size = new int[b.size()];
+		int clusters_b = 0, shared = 0;
+		boolean[] seen = new boolean[n];
+		lo = new int[b.size()];
+		hi = new int[b.size()];
+		for (int v = b.size() - 1; v >= 0; v--) {
+			if (b.nodes[v].isLeaf()) {
+				Integer label = labels.get(leafName(b.nodes[v]));
+				if (label == null || seen[label]) throw new IllegalArgumentException("Unexpected or duplicate leaf: " + leafName(b.nodes[v]));
+				seen[label] = true;
+				lo[v] = hi[v] = label;
+				size[v] = 1;
+				continue;
+			}
+			lo[v] = Integer.MAX_VALUE;
+			hi[v] = -1;
+			size[v] = 0;
+			for (int c : b.children[v]) {
+				lo[v] = Math.min(lo[v], lo[c]);
+				hi[v] = Math.max(hi[v], hi[c]);
+				size[v] += size[c];
+			}
+			if (b.children[v].length == 1 || size[v] == n) continue;
+			clusters_b++;
+			if (hi[v] - lo[v] + 1 == size[v]
+					&& (by_right[hi[v]] == lo[v] || by_left[lo[v]] == hi[v])) shared++;
+		}
+
+		return clusters_a + clusters_b - 2 * shared;
+	}
+
+	/**
+	 * Maps leaf names to indices 0..n-1, in sorted order.
+	 */
+	public static Map<String, Integer> leafIndex(PhyloTree t) {
+		FlatTree f = new FlatTree(t);
+		List<String> names = new ArrayList<String>();
+		for (PhyloTree node : f.nodes)
+			if (node.isLeaf()) names.add(leafName(node));
+		Collections.sort(names);
+		HashMap<String, Integer> index = new HashMap<String, Integer>();
+		for (String name : names) {
+			if (index.put(name, index.size()) != null)
+				throw new IllegalArgumentException("Duplicate leaf name: " + name);
+		}
+		return index;
+	}
+
+	/**
+	 * Assigns each leaf a random 64-bit hash, used by
+	 * {@link #clusterHashes(PhyloTree, Map, long[])}.
+	 */
+	public static long[] leafHashes(int n, long seed) {
+		Random r = new Random(seed);
+		long[] hashes = new long[n];
+		for (int i = 0; i < n; i++)
+			hashes[i] = r.nextLong();
+		return hashes;
+	}
+
+	/**
+	 * Returns the non-trivial clusters of a tree, each hashed as the XOR of
+	 * the hashes of its leaves. With random 64-bit leaf hashes, the chance of
+	 * two different clusters colliding is negligible.
+	 *
+	 * @param t
+	 *            The tree
+	 * @param leafindex
+	 *            Maps leaf names to indices in <code>leafhashes</code>
+	 * @param leafhashes
+	 *            The hash of each leaf
+	 * @return The distinct cluster hashes, sorted
+	 */
+	public static long[] clusterHashes(PhyloTree t, Map<String, Integer> leafindex, long[] leafhashes) {
+		FlatTree f = new FlatTree(t);
+		int n = leafindex.size();
+		if (f.leafcount != n) throw new IllegalArgumentException("Tree has " + f.leafcount + " leaves, expected " + n);
+
+		long[] hash = new long[f.size()];
+		int[] size = new int[f.size()];
+		long[] clusters = new long[f.size()];
+		int count = 0;
+		boolean[] seen = new boolean[n];
+		for (int v = f.size() - 1; v >= 0; v--) {
+			if (f.nodes[v].isLeaf()) {
+				Integer i = leafindex.get(leafName(f.nodes[v]));
+				if (i == null || seen[i]) throw new IllegalArgumentException("Unexpected or duplicate leaf: " + leafName(f.nodes[v]));
+				seen[i] = true;
+				hash[v] = leafhashes[i];
+				size[v] = 1;
+				continue;
+			}
+			for (int c : f.children[v]) {
+				hash[v] ^= hash[c];
+				size[v] += size[c];
+			}
+			if (f.children[v].length > 1 && size[v] < n) clusters[count++] = hash[v];
+		}
+
+		clusters = Arrays.copyOf(clusters, count);
+		Arrays.sort(clusters);
+		int distinct = 0;
+		for (int i = 0; i < count; i++)
+			if (i == 0 || clusters[i] != clusters[i - 1]) clusters[distinct++] = clusters[i];
+		return Arrays.copyOf(clusters, distinct);
+	}
+
+	/**
+	 * Robinson-Foulds distance between two trees' sorted cluster hashes
+	 */
+	public static int robinsonFoulds(long[] h1, long[] h2) {
+		int i = 0, j = 0, shared = 0;
+		while (i < h1.length && j < h2.length) {
+			if (h1[i] < h2[j]) i++;
+			else if (h1[i] > h2[j]) j++;
+			else {
+				shared++;
+				i++;
+				j++;
+			}
+		}
+		return h1.length + h2.length - 2 * shared;
+	}
+
+	public static int[][] robinsonFouldsMatrix(List<PhyloTree> trees) {
+		return robinsonFouldsMatrix(trees, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Computes Robinson-Foulds distances between all pairs of trees. Cluster
+	 * hashes are extracted once per tree, then rows of the matrix are compared
+	 * in parallel.
+	 *
+	 * @param trees
+	 *            Trees with the same leaf names
+	 * @param threads
+	 *            The number of worker threads
+	 * @return A symmetric matrix of distances
+	 */
+	public static int[][] robinsonFouldsMatrix(final List<PhyloTree> trees, int threads) {
+		final int m = trees.size();
+		final int[][] rf = new int[m][m];
+		if (m == 0) return rf;
+
+		final Map<String, Integer> leafindex = leafIndex(trees.get(0));
+		final long[] leafhashes = leafHashes(leafindex.size(), DEFAULT_SEED);
+		final long[][] hashes = new long[m][];
+
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+		try {
+			List<Future<?>> tasks = new ArrayList<Future<?>>();
+			for (int i = 0; i < m; i++) {
+				final int tree = i;
+				tasks.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() {
+						hashes[tree] = clusterHashes(trees.get(tree), leafindex, leafhashes);
+						return null;
+					}
+				}));
+			}
+			waitFor(tasks);
+
+			tasks.clear();
+			for (int i = 0; i < m; i++) {
+				final int row = i;
+				tasks.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() {
+						for (int j = row + 1; j < m; j++)
+							rf[row][j] = rf[j][row] = robinsonFoulds(hashes[row], hashes[j]);
+						return null;
+					}
+				}));
+			}
+			waitFor(tasks);
+		}
+		finally {
+			executor.shutdown();
+		}
+		return rf;
+	}
+
+	private static void waitFor(List<Future<?>> tasks) {
+		try {
+			for (Future<?> f : tasks)
+				f.get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Tree comparison interrupted", e);
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+			throw new IllegalStateException("Tree comparison failed", e.getCause());
+		}
+	}
+
+	private static String leafName(PhyloTree leaf) {
+		if (leaf.organism == null || leaf.organism.name == null)
+			throw new IllegalArgumentException("Leaf node has no organism name");
+		return leaf.organism.name;
+	}
+
+	/**
+	 * A tree flattened into arrays in preorder (children left to right), so
+	 * that iterating backwards visits children before their parents.
+	 */
+	private static class FlatTree {
+		PhyloTree[] nodes;
+		int[] parent, childpos;
+		int[][] children;
+		int leafcount = 0;
+
+		FlatTree(PhyloTree root) {
+			List<PhyloTree> order = new ArrayList<PhyloTree>();
+			List<Integer> parents = new ArrayList<Integer>(), positions = new ArrayList<Integer>();
+			List<PhyloTree> stack = new ArrayList<PhyloTree>();
+			List<Integer> stack_parent = new ArrayList<Integer>(), stack_pos = new ArrayList<Integer>();
+			stack.add(root);
+			stack_parent.add(-1);
+			stack_pos.add(0);
+			while (!stack.isEmpty()) {
+				int last = stack.size() - 1;
+				PhyloTree t = stack.remove(last);
+				parents.add(stack_parent.remove(last));
+				positions.add(stack_pos.remove(last));
+				int index = order.size();
+				order.add(t);
+				if (t.isLeaf()) leafcount++;
+				for (int k = t.children().size() - 1; k >= 0; k--) {
+					stack.add(t.getChild(k));
+					stack_parent.add(index);
+					stack_pos.add(k);
+				}
+			}
+
+			int n = order.size();
+			nodes = order.toArray(new PhyloTree[n]);
+			parent = new int[n];
+			childpos = new int[n];
+			children = new int[n][];
+			for (int v = 0; v < n; v++) {
+				parent[v] = parents.get(v);
+				childpos[v] = positions.get(v);
+				children[v] = new int[nodes[v].children().size()];
+			}
+			for (int v = 1; v < n; v++)
+				children[parent[v]][childpos[v]] = v;
+		}
+
+		int size() {
+			return nodes.length;
+		}
+	}
+}
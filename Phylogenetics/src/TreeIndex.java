@@ -0,0 +1,223 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * A lookup structure over a {@link PhyloTree} for lowest common ancestor
+ * (LCA) and patristic (path length) distance queries.
+ *
+ * Built once in O(n log n): the tree is walked to record each node's parent,
+ * depth, and distance from the root, along with an Euler tour (the sequence of
+ * nodes visited by a depth-first walk, including returns to a parent). The LCA
+ * of two nodes is the shallowest node on the tour between their first visits,
+ * which a sparse table of range minima answers in O(1).
+ *
+ * The index does not track later changes to the tree.
+ *
+ * @author raphaelkargon
+ */
+public class TreeIndex {
+	private final PhyloTree[] nodes; //preorder
+	private final int[] parent;
+	private final int[] level; //number of edges from the root
+	private final double[] rootdist; //sum of branch lengths from the root, excluding the root's own branch
+	private final int[] first; //first position of each node in the Euler tour
+	private final int[][] sparse; //sparse[k][i] = shallowest node in tour[i .. i + 2^k - 1]
+	private final int[] leaves; //leaf nodes, left to right
+	private final HashMap<String, Integer> leafnames = new HashMap<String, Integer>();
+
+	public TreeIndex(PhyloTree root) {
+		//preorder, children left to right
+		List<PhyloTree> order = new ArrayList<PhyloTree>();
+		List<Integer> parents = new ArrayList<Integer>();
+		List<PhyloTree> stack = new ArrayList<PhyloTree>();
+		List<Integer> stack_parent = new ArrayList<Integer>();
+		stack.add(root);
+		stack_parent.add(-1);
+		while (!stack.isEmpty()) {
+			PhyloTree t = stack.remove(stack.size() - 1);
+			int p = stack_parent.remove(stack_parent.size() - 1);
+			int index = order.size();
+			order.add(t);
+			parents.add(p);
+			for (int k = t.children().size() - 1; k >= 0; k--) {
+				stack.add(t.getChild(k));
+				stack_parent.add(index);
+			}
+		}
+
+		int n = order.size();
+		nodes = order.toArray(new PhyloTree[n]);
+		parent = new int[n];
+		level = new int[n];
+		rootdist = new double[n];
+		int leafcount = 0;
+		for (int v = 0; v < n; v++) {
+			parent[v] = parents.get(v);
+			if (v > 0) {
+				level[v] = level[parent[v]] + 1;
+				rootdist[v] = rootdist[parent[v]] + nodes[v].branchlength;
+			}
+			if (nodes[v].isLeaf()) leafcount++;
+		}
+
+		//children of each node are contiguous runs in preorder, so the tour only needs to know where each child's subtree ends
+		int[] subtree_end = new int[n];
+		for (int v = n - 1; v >= 0; v--) {
+			if (subtree_end[v] == 0) subtree_end[v] = v + 1;
+			if (v > 0) subtree_end[parent[v]] = Math.max(subtree_end[parent[v]], subtree_end[v]);
+		}
+
+		//Euler tour: every node is visited once on entry, and its parent again after each child
+		int[] tour = new int[2 * n - 1];
+		first = new int[n];
+		leaves = new int[leafcount];
+		int pos = 0, leaf = 0;
+		int[] walk = new int[n], next = new int[n];
+		int top = 0;
+		walk[0] = 0;
+		next[0] = 1;
+		first[0] = pos;
+		tour[pos++] = 0;
+		while (top >= 0) {
+			int v = walk[top];
+			if (nodes[v].isLeaf()) {
+				leaves[leaf] = v;
+				String name = (nodes[v].organism == null) ? null : nodes[v].organism.name;
+				if (name != null && leafnames.put(name, leaf) != null)
+					throw new IllegalArgumentException("Duplicate leaf name: " + name);
+				leaf++;
+			}
+			if (next[v] < subtree_end[v]) {
+				int c = next[v];
+				next[v] = subtree_end[c];
+				walk[++top] = c;
+				next[c] = c + 1;
+				first[c] = pos;
+				tour[pos++] = c;
+			}
+			else {
+				top--;
+				if (top >= 0) tour[pos++] = walk[top];
+			}
+		}
+
+		int logs = 32 - Integer.numberOfLeadingZeros(tour.length);
+		sparse = new int[logs][];
+		sparse[0] = tour;
+		for (int k = 1; k < logs; k++) {
+			int half = 1 << (k - 1);
+			int[] prev = sparse[k - 1];
+			int[] row = new int[tour.length - (1 << k) + 1];
+			for (int i = 0; i < row.length; i++)
+				row[i] = shallower(prev[i], prev[i + half]);
+			sparse[k] = row;
+		}
+	}
+
+	/* QUERIES */
+
+	/**
+	 * @return The number of leaves in the tree
+	 */
+	public int leafCount() {
+		return leaves.length;
+	}
+
+	/**
+	 * @return The i-th leaf from the left
+	 */
+	public PhyloTree getLeaf(int i) {
+		return nodes[leaves[i]];
+	}
+
+	/**
+	 * Returns the position of a leaf from the left, for use with
+	 * {@link #distance(int, int)}
+	 *
+	 * @return The leaf's index, or -1 if no leaf has that name
+	 */
+	public int leafIndex(String name) {
+		Integer i = leafnames.get(name);
+		return (i == null) ? -1 : i;
+	}
+
+	/**
+	 * @return The lowest common ancestor of leaves i and j
+	 */
+	public PhyloTree lca(int i, int j) {
+		return nodes[lcaNode(leaves[i], leaves[j])];
+	}
+
+	public PhyloTree lca(String a, String b) {
+		return lca(checkedLeafIndex(a), checkedLeafIndex(b));
+	}
+
+	/**
+	 * Returns the patristic distance between leaves i and j, the sum of branch
+	 * lengths on the path between them.
+	 */
+	public double distance(int i, int j) {
+		int u = leaves[i], v = leaves[j];
+		return rootdist[u] + rootdist[v] - 2 * rootdist[lcaNode(u, v)];
+	}
+
+	public double distance(String a, String b) {
+		return distance(checkedLeafIndex(a), checkedLeafIndex(b));
+	}
+
+	/**
+	 * Returns the matrix of patristic distances between all leaves, in the
+	 * same format as
+	 * {@link Phylogenetics#distanceMatrix(ArrayList, SubstitutionModel)}, so
+	 * the two can be compared directly.
+	 *
+	 * @param organisms
+	 *            The order of rows and columns, matched to leaves by name
+	 * @return A 2-dimensional ArrayList of patristic distances
+	 */
+	public <T> ArrayList<ArrayList<Double>> copheneticMatrix(List<Organism<T>> organisms) {
+		int[] index = new int[organisms.size()];
+		for (int i = 0; i < index.length; i++)
+			index[i] = checkedLeafIndex(organisms.get(i).name);
+
+		ArrayList<ArrayList<Double>> matrix = new ArrayList<ArrayList<Double>>();
+		for (int i = 0; i < index.length; i++) {
+			ArrayList<Double> row = new ArrayList<Double>(index.length);
+			for (int j = 0; j < index.length; j++)
+				row.add(distance(index[i], index[j]));
+			matrix.add(row);
+		}
+		return matrix;
+	}
+
+	/**
+	 * @return Patristic distances between all leaves, left to right
+	 */
+	public ArrayList<ArrayList<Double>> copheneticMatrix() {
+		ArrayList<ArrayList<Double>> matrix = new ArrayList<ArrayList<Double>>();
+		for (int i = 0; i < leaves.length; i++) {
+			ArrayList<Double> row = new ArrayList<Double>(leaves.length);
+			for (int j = 0; j < leaves.length; j++)
+				row.add(distance(i, j));
+			matrix.add(row);
+		}
+		return matrix;
+	}
+
+	private int lcaNode(int u, int v) {
+		int l = Math.min(first[u], first[v]), r = Math.max(first[u], first[v]);
+		int k = 31 - Integer.numberOfLeadingZeros(r - l + 1);
+		return shallower(sparse[k][l], sparse[k][r - (1 << k) + 1]);
+	}
+
+	private int shallower(int u, int v) {
+		return (level[u] <= level[v]) ? u : v;
+	}
+
+	private int checkedLeafIndex(String name) {
+		Integer i = leafnames.get(name);
+		if (i == null) throw new IllegalArgumentException("No leaf named \"" + name + "\"");
+		return i;
+	}
+}
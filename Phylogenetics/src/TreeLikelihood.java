@@ -0,0 +1,620 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Calculates the log likelihood of a tree of nucleotide sequences, using
+ * Felsenstein's pruning algorithm.
+ *
+ * Identical alignment columns are compressed into site patterns, each weighted
+ * by the number of times it occurs. Conditional likelihoods of each node are
+ * stored in flat arrays (pattern*4 + state), and are only recomputed for nodes
+ * above a branch that has changed. Site patterns are split into blocks, which
+ * are evaluated in parallel.
+ *
+ * Branch lengths are optimized with Newton's method. Visiting branches from
+ * the root down, the likelihood of everything outside each node's subtree is
+ * kept in upper partials, so the likelihood of one branch and its derivatives
+ * cost O(patterns), whatever the depth of the tree.
+ *
+ * Branch lengths are expected in substitutions per site. Trees built by
+ * {@link Phylogenetics#UPGMA_Tree(ArrayList, SubstitutionModel)} have
+ * lengths in total mismatches over the whole alignment, and must first be
+ * rescaled with {@link #perSiteLengths(PhyloTree, int)}, otherwise every
+ * branch is saturated and the likelihood does not depend on the tree.
+ *
+ * The tree itself is not copied; branch lengths should be changed through
+ * {@link #setBranchLength(PhyloTree, double)} so that the cached partial
+ * likelihoods stay valid. Negative branch lengths are treated as 0.
+ *
+ * @author raphaelkargon
+ */
+public class TreeLikelihood {
+	public static final double MAX_BRANCH_LENGTH = 10;
+	//starting length for branches too long to optimize from
+	public static final double INITIAL_BRANCH_LENGTH = 0.1;
+
+	private static final int STATES = NucleotideLikelihoodModel.STATES;
+	private static final double SCALING_THRESHOLD = 1e-50;
+	private static final int DEFAULT_BLOCK_SIZE = 512;
+	private static final int MAX_NEWTON_STEPS = 50;
+	private static final int MAX_STEP_HALVINGS = 30;
+
+	private final NucleotideLikelihoodModel model;
+	private final double[] freqs;
+
+	//nodes in postorder, the root is last
+	private final PhyloTree[] nodes;
+	private final int[] parent;
+	private final int[][] children;
+	private final int[] first; //node -> lowest index in its subtree, which spans first..node
+	private final IdentityHashMap<PhyloTree, Integer> indices = new IdentityHashMap<PhyloTree, Integer>();
+
+	private final int sitecount;
+	private final int patterncount;
+	private final double[] patternweights;
+	private final double[][] partials; //node -> conditional likelihoods, pattern*4 + state
+	private final double[][] scalefactors; //node -> accumulated log scaling factor per pattern
+	private final double[][] matrices; //node -> transition matrix of the branch above the node
+	private final boolean[] dirty;
+	//node -> likelihood of everything outside its subtree, for each state of
+	//its parent, pattern*4 + state; allocated by optimizeBranchLengths
+	private double[][] upper;
+	private double[][] upperscale;
+
+	private final int blocksize;
+	private final ExecutorService executor;
+	private double loglikelihood = Double.NaN;
+
+	public TreeLikelihood(PhyloTree tree, NucleotideLikelihoodModel model) {
+		this(tree, model, Runtime.getRuntime().availableProcessors(), DEFAULT_BLOCK_SIZE);
+	}
+
+	/**
+	 * @param tree
+	 *            The tree to evaluate. Leaf organisms must have Nucleotide
+	 *            traits.
+	 * @param model
+	 *            The substitution model
+	 * @param threads
+	 *            The number of threads used to evaluate blocks of site patterns
+	 * @param blocksize
+	 *            The number of site patterns in each block
+	 */
+	public TreeLikelihood(PhyloTree tree, NucleotideLikelihoodModel model, int threads, int blocksize) {
+		this.model = model;
+		this.freqs = model.getFrequencies();
+		this.blocksize = Math.max(1, blocksize);
+
+		//postorder traversal, iterative since UPGMA trees can be very deep
+		List<PhyloTree> order = new ArrayList<PhyloTree>();
+		List<PhyloTree> stack = new ArrayList<PhyloTree>();
+		stack.add(tree);
+		while (!stack.isEmpty()) {
+			PhyloTree t = stack.remove(stack.size() - 1);
+			order.add(t);
+			for (PhyloTree child : t.children())
+				stack.add(child);
+		}
+		int n = order.size();
+		nodes = new PhyloTree[n];
+		for (int i = 0; i < n; i++) {
+			nodes[i] = order.get(n - 1 - i);
+			indices.put(nodes[i], i);
+		}
+		parent = new int[n];
+		children = new int[n][];
+		first = new int[n];
+		parent[n - 1] = -1;
+		for (int i = 0; i < n; i++) {
+			List<PhyloTree> c = nodes[i].children();
+			children[i] = new int[c.size()];
+			first[i] = i;
+			for (int k = 0; k < c.size(); k++) {
+				children[i][k] = indices.get(c.get(k));
+				parent[children[i][k]] = i;
+				first[i] = Math.min(first[i], first[children[i][k]]);
+			}
+		}
+
+		//collect leaf sequences
+		List<Nucleotide[]> seqs = new ArrayList<Nucleotide[]>();
+		int length = Integer.MAX_VALUE;
+		for (PhyloTree t : nodes) {
+			if (!t.isLeaf()) continue;
+			if (t.organism == null || t.organism.traits == null)
+				throw new IllegalArgumentException("Leaf node has no sequence");
+			Nucleotide[] seq = new Nucleotide[t.organism.traits.length];
+			for (int i = 0; i < seq.length; i++) {
+				if (!(t.organism.traits[i] instanceof Nucleotide))
+					throw new IllegalArgumentException("Leaf \"" + t.organism.name + "\" does not have nucleotide traits");
+				seq[i] = (Nucleotide) t.organism.traits[i];
+			}
+			seqs.add(seq);
+			length = Math.min(length, seq.length);
+		}
+
+		//compress columns into weighted site patterns
+		LinkedHashMap<String, Integer> patterns = new LinkedHashMap<String, Integer>();
+		List<Integer> firstcolumn = new ArrayList<Integer>();
+		List<Double> weights = new ArrayList<Double>();
+		char[] column = new char[seqs.size()];
+		for (int site = 0; site < length; site++) {
+			for (int l = 0; l < column.length; l++)
+				column[l] = (char) NucleotideLikelihoodModel.stateIndex(seqs.get(l)[site]);
+			String key = new String(column);
+			Integer p = patterns.get(key);
+			if (p == null) {
+				patterns.put(key, weights.size());
+				firstcolumn.add(site);
+				weights.add(1.0);
+			}
+			else weights.set(p, weights.get(p) + 1);
+		}
+		sitecount = length;
+		patterncount = weights.size();
+		patternweights = new double[patterncount];
+		for (int p = 0; p < patterncount; p++)
+			patternweights[p] = weights.get(p);
+
+		//tip partials are fixed, 1 for every state compatible with the data
+		partials = new double[n][];
+		scalefactors = new double[n][];
+		matrices = new double[n][];
+		dirty = new boolean[n];
+		int leaf = 0;
+		for (int i = 0; i < n; i++) {
+			partials[i] = new double[patterncount * STATES];
+			scalefactors[i] = new double[patterncount];
+			matrices[i] = model.transitionMatrix(nodes[i].branchlength);
+			if (nodes[i].isLeaf()) {
+				Nucleotide[] seq = seqs.get(leaf++);
+				for (int p = 0; p < patterncount; p++) {
+					int state = NucleotideLikelihoodModel.stateIndex(seq[firstcolumn.get(p)]);
+					if (state < 0) Arrays.fill(partials[i], p * STATES, (p + 1) * STATES, 1.0);
+					else partials[i][p * STATES + state] = 1.0;
+				}
+			}
+			else dirty[i] = true;
+		}
+		//always evaluate at least once, even if the root is the only leaf
+		dirty[n - 1] = true;
+
+		int blocks = (patterncount + this.blocksize - 1) / this.blocksize;
+		threads = Math.max(1, Math.min(threads, blocks));
+		executor = (threads > 1) ? Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "TreeLikelihood");
+				t.setDaemon(true);
+				return t;
+			}
+		}) : null;
+	}
+
+	/**
+	 * Divides every branch length of a tree by the number of sites, converting
+	 * lengths measured in total differences over an alignment (as produced by
+	 * {@link Phylogenetics#UPGMA_Tree(ArrayList, SubstitutionModel)}) into
+	 * substitutions per site. The tree is modified in place.
+	 *
+	 * @param tree
+	 *            The tree to rescale
+	 * @param sites
+	 *            The alignment length the distances were summed over
+	 * @return The same tree
+	 */
+	public static PhyloTree perSiteLengths(PhyloTree tree, int sites) {
+		if (sites < 1) throw new IllegalArgumentException("Number of sites must be positive");
+		List<PhyloTree> stack = new ArrayList<PhyloTree>();
+		stack.add(tree);
+		while (!stack.isEmpty()) {
+			PhyloTree t = stack.remove(stack.size() - 1);
+			t.branchlength /= sites;
+			stack.addAll(t.children());
+		}
+		return tree;
+	}
+
+	/* ACCESSORS */
+
+	/**
+	 * @return The number of alignment columns, the length of the shortest leaf
+	 *         sequence
+	 */
+	public int getSiteCount() {
+		return sitecount;
+	}
+
+	/**
+	 * @return The number of distinct site patterns in the alignment
+	 */
+	public int getPatternCount() {
+		return patterncount;
+	}
+
+	/**
+	 * Returns the log likelihood of the tree, recomputing partial likelihoods
+	 * only for nodes whose subtree has changed since the last call.
+	 *
+	 * @return The log likelihood of the tree
+	 */
+	public double logLikelihood() {
+		boolean changed = false;
+		for (boolean d : dirty)
+			changed |= d;
+		if (!changed) return loglikelihood;
+
+		double total = sumBlocks(new BlockFunction() {
+			@Override
+			public double[] apply(int from, int to) {
+				return new double[] { updateBlock(from, to) };
+			}
+		}, 1)[0];
+
+		Arrays.fill(dirty, false);
+		loglikelihood = total;
+		return loglikelihood;
+	}
+
+	/* MUTATORS */
+
+	/**
+	 * Sets the length of the branch leading up to a node, and marks the
+	 * partial likelihoods of its ancestors for recalculation.
+	 *
+	 * @param node
+	 *            A node of the tree being evaluated
+	 * @param length
+	 *            The new branch length
+	 */
+	public void setBranchLength(PhyloTree node, double length) {
+		Integer i = indices.get(node);
+		if (i == null) throw new IllegalArgumentException("Node is not part of this tree");
+		node.branchlength = length;
+		matrices[i] = model.transitionMatrix(length);
+		for (int a = parent[i]; a >= 0 && !dirty[a]; a = parent[a])
+			dirty[a] = true;
+	}
+
+	/**
+	 * Optimizes each branch length in turn by Newton's method, keeping the
+	 * others fixed, until a full pass improves the log likelihood by less than
+	 * <code>lnl_tolerance</code>. Each pass visits the branches from the root
+	 * down.
+	 *
+	 * Branches longer than {@link #MAX_BRANCH_LENGTH} are saturated, so
+	 * changing any one of them alone does not change the likelihood. They are
+	 * first reset to {@link #INITIAL_BRANCH_LENGTH}, unless that lowers the
+	 * likelihood.
+	 *
+	 * @param maxpasses
+	 *            The maximum number of passes over all branches
+	 * @param length_tolerance
+	 *            Stops optimizing a branch once a Newton step changes its
+	 *            length by less than this
+	 * @param lnl_tolerance
+	 *            Stops once a pass improves the log likelihood by less than this
+	 * @return The final log likelihood
+	 */
+	public double optimizeBranchLengths(int maxpasses, double length_tolerance,
+			double lnl_tolerance) {
+		double lnl = logLikelihood();
+		double[] original = new double[nodes.length - 1];
+		boolean reset = false;
+		for (int i = 0; i < nodes.length - 1; i++) {
+			original[i] = nodes[i].branchlength;
+			if (!(original[i] <= MAX_BRANCH_LENGTH)) {
+				setBranchLength(nodes[i], INITIAL_BRANCH_LENGTH);
+				reset = true;
+			}
+		}
+		if (reset) {
+			double start = logLikelihood();
+			if (start >= lnl) lnl = start;
+			else {
+				for (int i = 0; i < nodes.length - 1; i++)
+					setBranchLength(nodes[i], original[i]);
+				logLikelihood();
+			}
+		}
+
+		if (upper == null) {
+			upper = new double[nodes.length][];
+			upperscale = new double[nodes.length][];
+			for (int i = 0; i < nodes.length - 1; i++) {
+				upper[i] = new double[patterncount * STATES];
+				upperscale[i] = new double[patterncount];
+			}
+		}
+
+		for (int pass = 0; pass < maxpasses; pass++) {
+			double start = lnl;
+			//preorder, so that the upper partials of each parent are up to
+			//date; the root has no branch above it
+			for (int i = nodes.length - 2; i >= 0; i--)
+				optimizeBranch(i, length_tolerance);
+			lnl = logLikelihood();
+			if (lnl - start < lnl_tolerance) break;
+		}
+		return lnl;
+	}
+
+	/**
+	 * Releases the worker threads
+	 */
+	public void shutdown() {
+		if (executor != null) executor.shutdown();
+	}
+
+	/* LIKELIHOOD */
+
+	private interface BlockFunction {
+		double[] apply(int from, int to);
+	}
+
+	/**
+	 * Applies a function to each block of site patterns, in parallel if there
+	 * is more than one thread, and returns the element-wise sum of the results.
+	 */
+	private double[] sumBlocks(final BlockFunction f, int size) {
+		int blocks = (patterncount + blocksize - 1) / blocksize;
+		double[] total = new double[size];
+		if (executor == null) {
+			for (int b = 0; b < blocks; b++) {
+				double[] r = f.apply(b * blocksize, Math.min(patterncount, (b + 1) * blocksize));
+				for (int k = 0; k < size; k++)
+					total[k] += r[k];
+			}
+			return total;
+		}
+
+		List<Future<double[]>> results = new ArrayList<Future<double[]>>();
+		for (int b = 0; b < blocks; b++) {
+			final int from = b * blocksize, to = Math.min(patterncount, (b + 1) * blocksize);
+			results.add(executor.submit(new Callable<double[]>() {
+				@Override
+				public double[] call() {
+					return f.apply(from, to);
+				}
+			}));
+		}
+		try {
+			for (Future<double[]> r : results) {
+				double[] block = r.get();
+				for (int k = 0; k < size; k++)
+					total[k] += block[k];
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Likelihood calculation interrupted", e);
+		}
+		catch (ExecutionException e) {
+			throw new IllegalStateException("Likelihood calculation failed", e.getCause());
+		}
+		return total;
+	}
+
+	/**
+	 * Optimizes the branch above a node. The upper partials of its parent must
+	 * be up to date, which holds when branches are visited in preorder.
+	 */
+	private void optimizeBranch(final int node, double tolerance) {
+		//the node and its siblings may have changed below since their partials
+		//were last computed
+		final List<Integer> stale = new ArrayList<Integer>();
+		for (int k : children[parent[node]])
+			if (dirty[k]) stale.add(k);
+		sumBlocks(new BlockFunction() {
+			@Override
+			public double[] apply(int from, int to) {
+				for (int k : stale)
+					for (int i = first[k]; i <= k; i++)
+						if (dirty[i] && !nodes[i].isLeaf()) updatePartials(i, from, to);
+				updateUpper(node, from, to);
+				return new double[0];
+			}
+		}, 0);
+		for (int k : stale)
+			Arrays.fill(dirty, first[k], k + 1, false);
+
+		double original = nodes[node].branchlength;
+		double[] foriginal = evaluateBranch(node, original);
+
+		//saturated or impossible lengths have no gradient to follow
+		double x = original;
+		double[] fx = foriginal;
+		if (!(original <= MAX_BRANCH_LENGTH) || !isFinite(fx)) {
+			x = INITIAL_BRANCH_LENGTH;
+			fx = evaluateBranch(node, x);
+		}
+		else x = Math.max(0, original);
+
+		for (int step = 0; step < MAX_NEWTON_STEPS && isFinite(fx); step++) {
+			//where the log likelihood is not concave, move uphill instead
+			double delta;
+			if (fx[2] < 0) delta = -fx[1] / fx[2];
+			else delta = (fx[1] > 0) ? Math.max(x, tolerance) : -x;
+			double y = Math.min(MAX_BRANCH_LENGTH, Math.max(0, x + delta));
+			if (y == x) break;
+
+			double[] fy = evaluateBranch(node, y);
+			for (int h = 0; h < MAX_STEP_HALVINGS && !(fy[0] >= fx[0]); h++) {
+				y = (x + y) / 2;
+				fy = evaluateBranch(node, y);
+			}
+			if (!(fy[0] >= fx[0])) break;
+
+			boolean converged = Math.abs(y - x) < tolerance;
+			x = y;
+			fx = fy;
+			if (converged) break;
+		}
+
+		if (fx[0] >= foriginal[0]) setBranchLength(nodes[node], x);
+		else setBranchLength(nodes[node], original);
+	}
+
+	private static boolean isFinite(double[] values) {
+		for (double v : values)
+			if (Double.isNaN(v) || Double.isInfinite(v)) return false;
+		return true;
+	}
+
+	/**
+	 * Returns the log likelihood of the tree, and its first and second
+	 * derivatives, as functions of the length of the branch above a node. The
+	 * upper partials of the node must be up to date.
+	 *
+	 * @return {lnL, dlnL/dt, d2lnL/dt2}
+	 */
+	private double[] evaluateBranch(final int node, double length) {
+		final double[] m = model.transitionMatrix(length);
+		final double[][] d = model.transitionDerivatives(length);
+		return sumBlocks(new BlockFunction() {
+			@Override
+			public double[] apply(int from, int to) {
+				double[] up = upper[node], down = partials[node];
+				double lnl = 0, d1 = 0, d2 = 0;
+				for (int p = from; p < to; p++) {
+					int offset = p * STATES;
+					double f = 0, f1 = 0, f2 = 0;
+					for (int s = 0; s < STATES; s++) {
+						double v = 0, v1 = 0, v2 = 0;
+						for (int j = 0; j < STATES; j++) {
+							double l = down[offset + j];
+							v += m[s * STATES + j] * l;
+							v1 += d[0][s * STATES + j] * l;
+							v2 += d[1][s * STATES + j] * l;
+						}
+						f += up[offset + s] * v;
+						f1 += up[offset + s] * v1;
+						f2 += up[offset + s] * v2;
+					}
+					double w = patternweights[p], g = f1 / f;
+					lnl += w * (Math.log(f) + upperscale[node][p] + scalefactors[node][p]);
+					d1 += w * g;
+					d2 += w * (f2 / f - g * g);
+				}
+				return new double[] { lnl, d1, d2 };
+			}
+		}, 3);
+	}
+
+	/**
+	 * Computes the upper partials of a node over a block of site patterns,
+	 * from the upper partials of its parent and the partials of its siblings.
+	 */
+	private void updateUpper(int node, int from, int to) {
+		int a = parent[node];
+		boolean root = (parent[a] < 0);
+		double[] out = upper[node];
+		double[] scale = upperscale[node];
+
+		for (int p = from; p < to; p++) {
+			int offset = p * STATES;
+			double logscale;
+			if (root) {
+				System.arraycopy(freqs, 0, out, offset, STATES);
+				logscale = 0;
+			}
+			else {
+				//carry the parent's upper partials down the branch above it
+				double[] m = matrices[a];
+				for (int j = 0; j < STATES; j++) {
+					double sum = 0;
+					for (int s = 0; s < STATES; s++)
+						sum += upper[a][offset + s] * m[s * STATES + j];
+					out[offset + j] = sum;
+				}
+				logscale = upperscale[a][p];
+			}
+			for (int k : children[a]) {
+				if (k == node) continue;
+				double[] siblingpartials = partials[k];
+				double[] m = matrices[k];
+				for (int s = 0; s < STATES; s++) {
+					double sum = 0;
+					for (int j = 0; j < STATES; j++)
+						sum += m[s * STATES + j] * siblingpartials[offset + j];
+					out[offset + s] *= sum;
+				}
+				logscale += scalefactors[k][p];
+			}
+
+			//rescale to avoid underflow on large trees
+			double max = 0;
+			for (int s = 0; s < STATES; s++)
+				max = Math.max(max, out[offset + s]);
+			if (max > 0 && max < SCALING_THRESHOLD) {
+				for (int s = 0; s < STATES; s++)
+					out[offset + s] /= max;
+				logscale += Math.log(max);
+			}
+			scale[p] = logscale;
+		}
+	}
+
+	/**
+	 * Recomputes partial likelihoods of all dirty nodes over a block of site
+	 * patterns, and returns the weighted log likelihood of the block.
+	 */
+	private double updateBlock(int from, int to) {
+		for (int i = 0; i < nodes.length; i++)
+			if (dirty[i] && !nodes[i].isLeaf()) updatePartials(i, from, to);
+
+		int root = nodes.length - 1;
+		double[] rootpartials = partials[root];
+		double lnl = 0;
+		for (int p = from; p < to; p++) {
+			double sum = 0;
+			for (int s = 0; s < STATES; s++)
+				sum += freqs[s] * rootpartials[p * STATES + s];
+			lnl += patternweights[p] * (Math.log(sum) + scalefactors[root][p]);
+		}
+		return lnl;
+	}
+
+	private void updatePartials(int node, int from, int to) {
+		double[] out = partials[node];
+		double[] scale = scalefactors[node];
+		int[] c = children[node];
+
+		for (int p = from; p < to; p++) {
+			int offset = p * STATES;
+			Arrays.fill(out, offset, offset + STATES, 1.0);
+			double logscale = 0;
+			for (int k = 0; k < c.length; k++) {
+				double[] childpartials = partials[c[k]];
+				double[] m = matrices[c[k]];
+				for (int s = 0; s < STATES; s++) {
+					double sum = 0;
+					for (int j = 0; j < STATES; j++)
+						sum += m[s * STATES + j] * childpartials[offset + j];
+					out[offset + s] *= sum;
+				}
+				logscale += scalefactors[c[k]][p];
+			}
+
+			//rescale to avoid underflow on large trees
+			double max = 0;
+			for (int s = 0; s < STATES; s++)
+				max = Math.max(max, out[offset + s]);
+			if (max > 0 && max < SCALING_THRESHOLD) {
+				for (int s = 0; s < STATES; s++)
+					out[offset + s] /= max;
+				logscale += Math.log(max);
+			}
+			scale[p] = logscale;
+		}
+	}
+}